@@ -1,48 +1,81 @@
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
-
-import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.TypeAdapter;
-import com.google.gson.annotations.SerializedName;
-import com.google.gson.stream.JsonReader;
-import com.google.gson.stream.JsonWriter;
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
+import lombok.Builder;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.RequiredArgsConstructor;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
 
 /**
  * Thread-safe API client for the Честный знак system with request rate limiting.
  */
 @Getter
-public class CrptApi {
+public class CrptApi implements AutoCloseable {
     // API endpoints
     private static final String PRODUCTION_BASE_URL = "https://ismp.crpt.ru/api/v3";
     private static final String DEMO_BASE_URL = "https://markirovka.demo.crpt.tech/api/v3";
@@ -51,15 +84,49 @@ public class CrptApi {
     private static final String CREATE_DOCUMENT_ENDPOINT = "/lk/documents/create";
 
     private static final String CONTENT_TYPE = "application/json";
+    private static final Duration DEFAULT_RESPONSE_CACHE_TTL = Duration.ofMinutes(10);
+
+    // Constant parts of the unified document request envelope
+    private static final Map<DocumentFormat, String> ENVELOPE_HEADS = new EnumMap<>(DocumentFormat.class);
+    private static final Map<ProductGroup, String> ENVELOPE_MIDDLES = new EnumMap<>(ProductGroup.class);
+    private static final Map<DocumentType, String> ENVELOPE_TAILS = new EnumMap<>(DocumentType.class);
+
+    static {
+        for (DocumentFormat format : DocumentFormat.values()) {
+            ENVELOPE_HEADS.put(format, "{\"document_format\":" + jsonString(format.getValue()) + ",\"product_document\":");
+        }
+        for (ProductGroup group : ProductGroup.values()) {
+            ENVELOPE_MIDDLES.put(group, ",\"product_group\":" + jsonString(group.getCode()) + ",\"signature\":");
+        }
+        for (DocumentType type : DocumentType.values()) {
+            ENVELOPE_TAILS.put(type, ",\"type\":" + jsonString(type.getValue()) + "}");
+        }
+    }
 
     private final HttpClient httpClient;
     private final Gson gson;
     private final Semaphore requestSemaphore;
     private final int requestLimit;
     private final Lock resetLock;
-    private final ScheduledExecutorService scheduler;
+    @Getter(AccessLevel.NONE)
+    private final long periodNanos;
+    @Getter(AccessLevel.NONE)
+    private volatile long windowStart;
+    @Getter(AccessLevel.NONE)
+    private volatile boolean closed;
     private final String baseUrl;
+    private final Duration requestTimeout;
+    private final boolean validateDocuments;
+    @Getter(AccessLevel.NONE)
+    private final ResponseCache responseCache;
+    private final int parallelSerializationThreshold;
+    private final URI authCertKeyUri;
+    private final URI authCertUri;
+    @Getter(AccessLevel.NONE)
+    private final Map<ProductGroup, URI> createDocumentUris;
     private String authToken;
+    @Getter(AccessLevel.NONE)
+    private volatile AuthorizedHeaders authorizedHeaders;
 
     public enum Environment {
         PRODUCTION, DEMO
@@ -73,44 +140,170 @@ public class CrptApi {
      * @param environment  The environment to use (PRODUCTION or DEMO)
      */
     public CrptApi(TimeUnit timeUnit, int requestLimit, Environment environment) {
+        this(timeUnit, requestLimit, environment, null, null, null, null, null, null, false, 0, null, 0);
+    }
+
+    /**
+     * Creates a new CrptApi instance with the specified rate limiting, using the production environment.
+     *
+     * @param timeUnit     The time unit for the rate limit interval
+     * @param requestLimit The maximum number of requests allowed in the specified time unit
+     */
+    public CrptApi(TimeUnit timeUnit, int requestLimit) {
+        this(timeUnit, requestLimit, Environment.PRODUCTION);
+    }
+
+    /**
+     * Creates a new CrptApi instance with tuned HTTP settings. Use {@link #builder()} to call it.
+     *
+     * @param timeUnit       The time unit for the rate limit interval
+     * @param requestLimit   The maximum number of requests allowed in the specified time unit
+     * @param environment    The environment to use, PRODUCTION if not set
+     * @param baseUrl        Overrides the environment base URL, e.g. for a local stub
+     * @param httpVersion    Preferred HTTP version; HTTP/2 multiplexes requests over one connection
+     * @param connectTimeout Maximum time to establish a connection
+     * @param requestTimeout Maximum time to wait for each response, so a hung connection cannot block forever
+     * @param executor       Executor for the asynchronous work of the HTTP client, shared between instances
+     * @param httpClient     Externally managed HTTP client; excludes the other HTTP client settings
+     * @param validateDocuments Validate documents before a rate limit permit is spent on them
+     * @param responseCacheSize Maximum number of cached document creation responses, 0 disables the cache
+     * @param responseCacheTtl  How long a response is reused for identical requests, 10 minutes if not set
+     * @param parallelSerializationThreshold Number of products from which documents are serialized and encoded
+     *                                       in parallel on the common ForkJoinPool, 0 disables it
+     */
+    @Builder
+    private CrptApi(
+            TimeUnit timeUnit,
+            int requestLimit,
+            Environment environment,
+            String baseUrl,
+            HttpClient.Version httpVersion,
+            Duration connectTimeout,
+            Duration requestTimeout,
+            Executor executor,
+            HttpClient httpClient,
+            boolean validateDocuments,
+            int responseCacheSize,
+            Duration responseCacheTtl,
+            int parallelSerializationThreshold) {
+        if (timeUnit == null) {
+            throw new IllegalArgumentException("Time unit must be specified");
+        }
         if (requestLimit <= 0) {
             throw new IllegalArgumentException("Request limit must be positive");
         }
+        requirePositive(connectTimeout, "Connect timeout");
+        requirePositive(requestTimeout, "Request timeout");
+        requirePositive(responseCacheTtl, "Response cache TTL");
+        if (responseCacheSize < 0) {
+            throw new IllegalArgumentException("Response cache size must not be negative");
+        }
+        if (parallelSerializationThreshold < 0) {
+            throw new IllegalArgumentException("Parallel serialization threshold must not be negative");
+        }
+        if (httpClient != null && (httpVersion != null || connectTimeout != null || executor != null)) {
+            throw new IllegalArgumentException(
+                    "HTTP version, connect timeout and executor must be configured on the injected HttpClient");
+        }
 
-        this.httpClient = HttpClient.newHttpClient();
+        this.httpClient = httpClient != null ? httpClient : newHttpClient(httpVersion, connectTimeout, executor);
+        this.requestTimeout = requestTimeout;
+        this.validateDocuments = validateDocuments;
+        this.parallelSerializationThreshold = parallelSerializationThreshold;
+        this.responseCache = responseCacheSize == 0 ? null : new ResponseCache(responseCacheSize,
+                responseCacheTtl != null ? responseCacheTtl : DEFAULT_RESPONSE_CACHE_TTL);
         this.gson = new GsonBuilder()
                 .registerTypeAdapter(LocalDate.class, new LocalDateAdapter())
+                .registerTypeAdapterFactory(new ProductListAdapterFactory())
                 .setPrettyPrinting()
                 .create();
         this.requestLimit = requestLimit;
         this.requestSemaphore = new Semaphore(requestLimit);
         this.resetLock = new ReentrantLock();
-        this.scheduler = Executors.newScheduledThreadPool(1);
-        this.baseUrl = environment == Environment.PRODUCTION ? PRODUCTION_BASE_URL : DEMO_BASE_URL;
+        this.periodNanos = timeUnit.toNanos(1);
+        this.windowStart = System.nanoTime();
+        if (baseUrl == null) {
+            baseUrl = environment == Environment.DEMO ? DEMO_BASE_URL : PRODUCTION_BASE_URL;
+        }
+        this.baseUrl = baseUrl;
+
+        // Endpoint URIs never change for an instance, so parse them once
+        this.authCertKeyUri = URI.create(baseUrl + AUTH_CERT_KEY_ENDPOINT);
+        this.authCertUri = URI.create(baseUrl + AUTH_CERT_ENDPOINT);
+        this.createDocumentUris = new EnumMap<>(ProductGroup.class);
+        for (ProductGroup group : ProductGroup.values()) {
+            createDocumentUris.put(group, URI.create(baseUrl + CREATE_DOCUMENT_ENDPOINT + "?pg=" + group.getCode()));
+        }
+    }
+
+    /**
+     * Lazily created HTTP client shared by all instances with default HTTP settings.
+     * Every HttpClient runs its own selector thread, so per-instance clients would add one idle thread each.
+     */
+    private static class SharedHttpClient {
+        private static final HttpClient INSTANCE = HttpClient.newHttpClient();
+    }
+
+    private static HttpClient newHttpClient(HttpClient.Version httpVersion, Duration connectTimeout, Executor executor) {
+        if (httpVersion == null && connectTimeout == null && executor == null) {
+            return SharedHttpClient.INSTANCE;
+        }
+        HttpClient.Builder builder = HttpClient.newBuilder();
+        if (httpVersion != null) {
+            builder.version(httpVersion);
+        }
+        if (connectTimeout != null) {
+            builder.connectTimeout(connectTimeout);
+        }
+        if (executor != null) {
+            builder.executor(executor);
+        }
+        return builder.build();
+    }
+
+    private static void requirePositive(Duration timeout, String name) {
+        if (timeout != null && (timeout.isZero() || timeout.isNegative())) {
+            throw new IllegalArgumentException(name + " must be positive");
+        }
+    }
 
-        // Schedule periodic permit replenishment
-        long periodInMillis = timeUnit.toMillis(1);
-        scheduler.scheduleAtFixedRate(this::resetPermits, periodInMillis, periodInMillis, TimeUnit.MILLISECONDS);
+    /**
+     * Start a request to the given URI with the configured per-request timeout.
+     */
+    private HttpRequest.Builder newRequest(URI uri) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri);
+        if (requestTimeout != null) {
+            builder.timeout(requestTimeout);
+        }
+        return builder;
     }
 
     /**
-     * Creates a new CrptApi instance with the specified rate limiting, using the production environment.
+     * Take a permit for one request, refilling the permits first if the current rate limit window has elapsed.
+     * Permits are refilled lazily by the callers, so no timer thread is needed.
      *
-     * @param timeUnit     The time unit for the rate limit interval
-     * @param requestLimit The maximum number of requests allowed in the specified time unit
+     * @return true if a permit was acquired
      */
-    public CrptApi(TimeUnit timeUnit, int requestLimit) {
-        this(timeUnit, requestLimit, Environment.PRODUCTION);
+    private boolean tryAcquirePermit() {
+        long now = System.nanoTime();
+        if (now - windowStart >= periodNanos) {
+            resetPermits(now);
+        }
+        return requestSemaphore.tryAcquire();
     }
 
     /**
-     * Reset available permits according to the rate limit.
+     * Reset available permits according to the rate limit and start the window that contains {@code now}.
      */
-    private void resetPermits() {
+    private void resetPermits(long now) {
         resetLock.lock();
         try {
-            requestSemaphore.drainPermits();
-            requestSemaphore.release(requestLimit);
+            long elapsed = now - windowStart;
+            if (elapsed >= periodNanos) {
+                windowStart = now - elapsed % periodNanos;
+                requestSemaphore.drainPermits();
+                requestSemaphore.release(requestLimit);
+            }
         } finally {
             resetLock.unlock();
         }
@@ -129,8 +322,7 @@ public class CrptApi {
             throws IOException, InterruptedException, ApiException {
         // First, get the authentication key
         AuthKeyResponse keyResponse = executeRequest(
-                HttpRequest.newBuilder()
-                        .uri(URI.create(baseUrl + AUTH_CERT_KEY_ENDPOINT))
+                newRequest(authCertKeyUri)
                         .GET()
                         .build(),
                 AuthKeyResponse.class
@@ -144,8 +336,7 @@ public class CrptApi {
         String authRequestJson = gson.toJson(authRequest);
 
         // Send the signed data to get a token
-        HttpRequest authHttpRequest = HttpRequest.newBuilder()
-                .uri(URI.create(baseUrl + AUTH_CERT_ENDPOINT))
+        HttpRequest authHttpRequest = newRequest(authCertUri)
                 .header("Content-Type", CONTENT_TYPE)
                 .POST(HttpRequest.BodyPublishers.ofString(authRequestJson))
                 .build();
@@ -223,33 +414,37 @@ public class CrptApi {
             ProductGroup productGroup)
             throws InterruptedException, IOException, ApiException, TimeoutException {
 
+        if (closed) {
+            throw new IllegalStateException("API client is closed");
+        }
+
         // Check if we have an auth token
-        if (authToken == null || authToken.isEmpty()) {
+        String token = authToken;
+        if (token == null || token.isEmpty()) {
             throw new IllegalStateException("Authentication token is missing. Call authenticate() first.");
         }
 
-        // Acquire a permit, blocking if necessary
-        if (!requestSemaphore.tryAcquire()) {
+        // Create the request body
+        String requestBodyJson = buildDocumentEnvelope(documentFormat, productDocument, signature, type, productGroup);
+
+        if (responseCache != null) {
+            // Duplicate requests are answered from the cache without spending a permit
+            return responseCache.get(requestBodyJson, () -> sendDocument(token, productGroup, requestBodyJson));
+        }
+        return sendDocument(token, productGroup, requestBodyJson);
+    }
+
+    private CreateDocumentResponse sendDocument(String token, ProductGroup productGroup, String requestBodyJson)
+            throws InterruptedException, IOException, ApiException, TimeoutException {
+        // Acquire a permit for the current rate limit window
+        if (!tryAcquirePermit()) {
             throw new TimeoutException("Request rate limit exceeded. Try again later.");
         }
 
         try {
-            // Create the request body
-            UnifiedDocumentRequest requestBody = new UnifiedDocumentRequest(
-                    documentFormat.getValue(),
-                    productDocument,
-                    productGroup.getCode(),
-                    signature,
-                    type.getValue()
-            );
-
-            String requestBodyJson = gson.toJson(requestBody);
-
             // Build and send the HTTP request with product group query parameter
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(baseUrl + CREATE_DOCUMENT_ENDPOINT + "?pg=" + productGroup.getCode()))
-                    .header("Content-Type", CONTENT_TYPE)
-                    .header("Authorization", "Bearer " + authToken)
+            HttpRequest request = newRequest(createDocumentUris.get(productGroup))
+                    .headers(headersFor(token))
                     .POST(HttpRequest.BodyPublishers.ofString(requestBodyJson))
                     .build();
 
@@ -260,9 +455,6 @@ public class CrptApi {
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw e;
-        } finally {
-            // Always release the permit
-            requestSemaphore.release();
         }
     }
 
@@ -278,12 +470,16 @@ public class CrptApi {
      * @throws IOException          If there's an I/O error during the HTTP request
      * @throws ApiException         If the API returns an error
      * @throws TimeoutException     If the request times out due to rate limiting
+     * @throws ValidationException  If document validation is enabled and the document is invalid
      */
     public CreateDocumentResponse createIntroduceGoodsDocument(Document document, String signature, ProductGroup productGroup)
             throws InterruptedException, IOException, ApiException, TimeoutException {
+        if (validateDocuments) {
+            DocumentValidator.requireValid(document, DocumentType.LP_INTRODUCE_GOODS, productGroup);
+        }
+
         // Convert the document to Base64-encoded JSON string
-        String documentJson = gson.toJson(document);
-        String base64Document = java.util.Base64.getEncoder().encodeToString(documentJson.getBytes());
+        String base64Document = encodeDocument(document);
 
         return createDocument(
                 DocumentFormat.MANUAL,
@@ -294,6 +490,113 @@ public class CrptApi {
         );
     }
 
+    /**
+     * Serialize a document to JSON and encode it in Base64, in parallel for documents
+     * with at least {@code parallelSerializationThreshold} products.
+     */
+    String encodeDocument(Document document) {
+        List<Product> products = document.getProducts();
+        if (parallelSerializationThreshold > 0 && products != null && products.size() >= parallelSerializationThreshold) {
+            return ParallelDocumentEncoder.encode(gson, document);
+        }
+        String documentJson = gson.toJson(document);
+        return Base64.getEncoder().encodeToString(documentJson.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parallel serialization and Base64 encoding of documents with many products, on the common ForkJoinPool.
+     * The output is byte-identical to encoding {@code gson.toJson(document)} sequentially.
+     */
+    private static class ParallelDocumentEncoder {
+        private static final int PRODUCTS_PER_SEGMENT = 1024;
+        // Base64 encodes 3 bytes into 4 characters, so chunks aligned to 3 bytes are encoded independently
+        private static final int BASE64_CHUNK_SIZE = 3 * 256 * 1024;
+        private static final String MARKER = "parallel-document-encoder-marker";
+
+        static String encode(Gson gson, Document document) {
+            // Segments read products by index, which would walk a linked list from the start every time
+            List<Product> products = document.getProducts() instanceof RandomAccess
+                    || document.getProducts() instanceof ProductBatch
+                    ? document.getProducts()
+                    : new ArrayList<>(document.getProducts());
+
+            // Serialize the document around a marker product, then cut the marker out of it.
+            // The marker is serialized at the same nesting depth, so the texts match exactly.
+            Product marker = new Product();
+            marker.setUitCode(MARKER);
+            Document shell = new Document(
+                    document.getDescription(), document.getDocId(), document.getDocStatus(), document.getDocType(),
+                    document.isImportRequest(), document.getOwnerInn(), document.getParticipantInn(),
+                    document.getProducerInn(), document.getProductionDate(), document.getProductionType(),
+                    Collections.singletonList(marker), document.getRegDate(), document.getRegNumber());
+            String shellJson = gson.toJson(shell);
+            String markerJson = serializeProducts(gson, Collections.singletonList(marker), 0, 1);
+            int markerAt = shellJson.indexOf(markerJson);
+            if (markerAt < 0) {
+                throw new IllegalStateException("Unexpected document layout");
+            }
+
+            // Every segment starts like the first array element; the following ones need a separator
+            int segmentCount = (products.size() + PRODUCTS_PER_SEGMENT - 1) / PRODUCTS_PER_SEGMENT;
+            byte[][] segments = new byte[segmentCount + 2][];
+            segments[0] = shellJson.substring(0, markerAt).getBytes(StandardCharsets.UTF_8);
+            segments[segmentCount + 1] = shellJson.substring(markerAt + markerJson.length()).getBytes(StandardCharsets.UTF_8);
+            IntStream.range(0, segmentCount).parallel().forEach(segment -> {
+                int from = segment * PRODUCTS_PER_SEGMENT;
+                int to = Math.min(products.size(), from + PRODUCTS_PER_SEGMENT);
+                String json = serializeProducts(gson, products, from, to);
+                segments[segment + 1] = (segment == 0 ? json : "," + json).getBytes(StandardCharsets.UTF_8);
+            });
+
+            int length = 0;
+            for (byte[] segment : segments) {
+                length += segment.length;
+            }
+            byte[] documentJson = new byte[length];
+            int offset = 0;
+            for (byte[] segment : segments) {
+                System.arraycopy(segment, 0, documentJson, offset, segment.length);
+                offset += segment.length;
+            }
+
+            byte[] encoded = new byte[4 * ((length + 2) / 3)];
+            int chunkCount = (length + BASE64_CHUNK_SIZE - 1) / BASE64_CHUNK_SIZE;
+            IntStream.range(0, chunkCount).parallel().forEach(chunk -> {
+                int from = chunk * BASE64_CHUNK_SIZE;
+                int to = Math.min(documentJson.length, from + BASE64_CHUNK_SIZE);
+                ByteBuffer chunkEncoded = Base64.getEncoder().encode(ByteBuffer.wrap(documentJson, from, to - from));
+                System.arraycopy(chunkEncoded.array(), chunkEncoded.arrayOffset(), encoded, from / 3 * 4,
+                        chunkEncoded.remaining());
+            });
+            return new String(encoded, StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * Serialize products as elements of the {@code products} array, without the enclosing brackets.
+         */
+        private static String serializeProducts(Gson gson, List<Product> products, int from, int to) {
+            try {
+                StringWriter buffer = new StringWriter();
+                JsonWriter writer = gson.newJsonWriter(buffer);
+                writer.beginObject();
+                writer.name("products");
+                writer.beginArray();
+                writer.flush();
+                int start = buffer.getBuffer().length();
+
+                TypeAdapter<Product> adapter = gson.getAdapter(Product.class);
+                for (int i = from; i < to; i++) {
+                    adapter.write(writer, products.get(i));
+                }
+                writer.flush();
+                return buffer.getBuffer().substring(start);
+            } catch (IOException e) {
+                // StringWriter does not throw
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
     /**
      * Document format enum.
      */
@@ -398,24 +701,231 @@ public class CrptApi {
     }
 
     /**
-     * Unified document request for the document creation API.
+     * Build the unified document request body from the precomputed envelope parts.
+     * Only the document content and the signature are written per call.
      */
+    private static String buildDocumentEnvelope(
+            DocumentFormat documentFormat,
+            String productDocument,
+            String signature,
+            DocumentType type,
+            ProductGroup productGroup) {
+        String head = ENVELOPE_HEADS.get(documentFormat);
+        String middle = ENVELOPE_MIDDLES.get(productGroup);
+        String tail = ENVELOPE_TAILS.get(type);
+
+        int variableLength = (productDocument == null ? 4 : productDocument.length() + 2)
+                + (signature == null ? 4 : signature.length() + 2);
+        StringBuilder body = new StringBuilder(head.length() + middle.length() + tail.length() + variableLength);
+        body.append(head);
+        appendJsonString(body, productDocument);
+        body.append(middle);
+        appendJsonString(body, signature);
+        body.append(tail);
+        return body.toString();
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder out = new StringBuilder(value.length() + 2);
+        appendJsonString(out, value);
+        return out.toString();
+    }
+
+    /**
+     * Append a JSON string literal, escaping only what RFC 8259 requires.
+     */
+    private static void appendJsonString(StringBuilder out, String value) {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != '"' && c != '\\' && c >= 0x20) {
+                continue;
+            }
+            out.append(value, start, i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    out.append(String.format("\\u%04x", (int) c));
+            }
+            start = i + 1;
+        }
+        out.append(value, start, value.length()).append('"');
+    }
+
+    /**
+     * A document creation request that may be answered from the response cache.
+     */
+    @FunctionalInterface
+    private interface DocumentRequest {
+        CreateDocumentResponse send() throws InterruptedException, IOException, ApiException, TimeoutException;
+    }
+
+    /**
+     * Bounded cache of document creation responses keyed by a hash of the request body.
+     * Identical requests get the cached response, and identical requests in flight share one pending response.
+     * Only successful responses are cached; entries are evicted oldest first and expire after the TTL.
+     * The size bound counts completed entries only: requests in flight are already bounded by the callers
+     * waiting on them and cannot be evicted while duplicates wait for their response.
+     * The cached response is never handed out, every caller gets its own copy.
+     */
+    private static class ResponseCache {
+        private final int maximumSize;
+        private final long ttlNanos;
+        private final ConcurrentMap<BodyKey, CacheEntry> entries = new ConcurrentHashMap<>();
+        private final Queue<CacheEntry> completionOrder = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger completed = new AtomicInteger();
+
+        ResponseCache(int maximumSize, Duration ttl) {
+            this.maximumSize = maximumSize;
+            this.ttlNanos = ttl.toNanos();
+        }
+
+        CreateDocumentResponse get(String requestBody, DocumentRequest request)
+                throws InterruptedException, IOException, ApiException, TimeoutException {
+            BodyKey key = BodyKey.of(requestBody);
+            CacheEntry entry = new CacheEntry(key);
+            while (true) {
+                CacheEntry existing = entries.putIfAbsent(key, entry);
+                if (existing == null) {
+                    break;
+                }
+                if (!existing.isExpired(System.nanoTime(), ttlNanos)) {
+                    return existing.await();
+                }
+                if (entries.replace(key, existing, entry)) {
+                    // An expired entry was completed, so it is queued and counted until removed here
+                    if (completionOrder.remove(existing)) {
+                        completed.decrementAndGet();
+                    }
+                    break;
+                }
+            }
+
+            // This call owns the entry and sends the request for all duplicates
+            try {
+                CreateDocumentResponse response = request.send();
+                // Queued before completion, as only a completed entry can expire and be replaced
+                completionOrder.add(entry);
+                if (completed.incrementAndGet() > maximumSize) {
+                    CacheEntry oldest = completionOrder.poll();
+                    if (oldest != null) {
+                        completed.decrementAndGet();
+                        entries.remove(oldest.key, oldest);
+                    }
+                }
+                entry.complete(copyOf(response));
+                return response;
+            } catch (Throwable e) {
+                // Errors too, or duplicates would wait forever on an entry that is never completed
+                entries.remove(key, entry);
+                entry.response.completeExceptionally(e);
+                throw e;
+            }
+        }
+    }
+
+    private static CreateDocumentResponse copyOf(CreateDocumentResponse response) {
+        return new CreateDocumentResponse(response.getDocumentId(), response.getStatus());
+    }
+
     @RequiredArgsConstructor
-    private static class UnifiedDocumentRequest {
-        @SerializedName("document_format")
-        private final String documentFormat;
+    private static class CacheEntry {
+        private final BodyKey key;
+        private final CompletableFuture<CreateDocumentResponse> response = new CompletableFuture<>();
+        private volatile long completedNanos;
+
+        void complete(CreateDocumentResponse value) {
+            completedNanos = System.nanoTime();
+            response.complete(value);
+        }
 
-        @SerializedName("product_document")
-        private final String productDocument;
+        boolean isExpired(long now, long ttlNanos) {
+            return response.isDone() && !response.isCompletedExceptionally() && now - completedNanos > ttlNanos;
+        }
 
-        @SerializedName("product_group")
-        private final String productGroup;
+        CreateDocumentResponse await() throws InterruptedException, IOException, ApiException, TimeoutException {
+            try {
+                return copyOf(response.get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof ApiException) {
+                    throw (ApiException) cause;
+                } else if (cause instanceof TimeoutException) {
+                    throw (TimeoutException) cause;
+                } else if (cause instanceof InterruptedException) {
+                    throw new IOException("Duplicate request was interrupted", cause);
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException("Duplicate request failed", cause);
+            }
+        }
+    }
 
-        @SerializedName("signature")
-        private final String signature;
+    /**
+     * 128-bit hash of a request body. Two independent 64-bit hashes keep accidental collisions,
+     * which would answer a document with another document's response, out of practical reach.
+     */
+    @EqualsAndHashCode
+    @RequiredArgsConstructor
+    private static class BodyKey {
+        private final int length;
+        private final long high;
+        private final long low;
+
+        static BodyKey of(String body) {
+            long high = 0xcbf29ce484222325L;
+            long low = 0x9e3779b97f4a7c15L;
+            for (int i = 0; i < body.length(); i++) {
+                char c = body.charAt(i);
+                high = (high ^ c) * 0x100000001b3L;
+                low = Long.rotateLeft(low + c * 0xc2b2ae3d27d4eb4fL, 31) * 0x9e3779b97f4a7c15L;
+            }
+            return new BodyKey(body.length(), high, low);
+        }
+    }
+
+    /**
+     * Headers of an authorized request, cached for one token generation.
+     */
+    @RequiredArgsConstructor
+    private static class AuthorizedHeaders {
+        private final String token;
+        private final String[] headers;
+    }
 
-        @SerializedName("type")
-        private final String type;
+    private String[] headersFor(String token) {
+        AuthorizedHeaders cached = authorizedHeaders;
+        // A new token generation is always a new String instance
+        if (cached == null || cached.token != token) {
+            cached = new AuthorizedHeaders(token, new String[]{
+                    "Content-Type", CONTENT_TYPE,
+                    "Authorization", "Bearer " + token
+            });
+            authorizedHeaders = cached;
+        }
+        return cached.headers;
     }
 
     /**
@@ -430,29 +940,51 @@ public class CrptApi {
      */
     private <T> T executeRequest(HttpRequest request, Class<T> responseType)
             throws IOException, InterruptedException, ApiException {
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-
-        // Check for error responses
-        int statusCode = response.statusCode();
-        if (statusCode >= 400) {
-            String responseBody = response.body();
-            if (responseBody != null && !responseBody.isEmpty()) {
-                ApiError error = gson.fromJson(responseBody, ApiError.class);
-                throw new ApiException(statusCode, error.getErrorMessage());
-            } else {
-                throw new ApiException(statusCode, "API returned an error with no content");
+        HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+
+        // The body is parsed straight from the stream; unknown fields are skipped by Gson
+        try (Reader body = new InputStreamReader(response.body(), StandardCharsets.UTF_8)) {
+            // Check for error responses
+            int statusCode = response.statusCode();
+            if (statusCode >= 400) {
+                ApiError error = gson.fromJson(body, ApiError.class);
+                if (error != null) {
+                    throw new ApiException(statusCode, error.getErrorMessage());
+                } else {
+                    throw new ApiException(statusCode, "API returned an error with no content");
+                }
             }
+
+            // Parse the response
+            return gson.fromJson(body, responseType);
         }
+    }
 
-        // Parse the response
-        return gson.fromJson(response.body(), responseType);
+    /**
+     * Clean up resources when the API client is no longer needed.
+     * Documents can no longer be created afterwards.
+     */
+    @Override
+    public void close() {
+        closed = true;
     }
 
     /**
      * Clean up resources when the API client is no longer needed.
+     *
+     * @see #close()
      */
     public void shutdown() {
-        scheduler.shutdown();
+        close();
+    }
+
+    /**
+     * Command-line entry point for bulk submission of NDJSON or CSV product files.
+     *
+     * @param args The products file and options, see {@link BulkSubmitter#USAGE}
+     */
+    public static void main(String[] args) {
+        System.exit(BulkSubmitter.run(args, System.out));
     }
 
     /**
@@ -468,6 +1000,34 @@ public class CrptApi {
         }
     }
 
+    /**
+     * Exception thrown when a document fails pre-submit validation.
+     */
+    @Getter
+    public static class ValidationException extends IllegalArgumentException {
+        private final List<Violation> violations;
+
+        public ValidationException(List<Violation> violations) {
+            super("Document is invalid: " + violations);
+            this.violations = violations;
+        }
+    }
+
+    /**
+     * A single field that failed validation.
+     */
+    @Getter
+    @RequiredArgsConstructor
+    public static class Violation {
+        private final String field;
+        private final String message;
+
+        @Override
+        public String toString() {
+            return field + ": " + message;
+        }
+    }
+
     /**
      * API error response.
      */
@@ -596,7 +1156,914 @@ public class CrptApi {
         @SerializedName("uitu_code")
         private String uituCode;
     }
-    
+
+    /**
+     * Compact columnar container of products for very large documents.
+     * Repeated strings (INNs, TN VED codes, certificate documents) are dictionary encoded
+     * and dates are stored as epoch days, so no {@link Product} objects are kept in memory.
+     * It is a {@code List<Product>} and can be passed to {@link Document#setProducts(List)};
+     * {@link #get(int)} materializes a product on demand, while serialization writes the columns
+     * directly to the same JSON as a list of {@link Product}.
+     */
+    public static class ProductBatch extends AbstractList<Product> {
+        private static final int NO_VALUE = -1;
+        private static final int NO_DATE = Integer.MIN_VALUE;
+
+        private final Map<String, Integer> dictionaryCodes = new HashMap<>();
+        private final List<String> dictionary = new ArrayList<>();
+
+        private int[] certificateDocuments;
+        private int[] certificateDocumentDates;
+        private String[] certificateDocumentNumbers;
+        private int[] ownerInns;
+        private int[] producerInns;
+        private int[] productionDates;
+        private int[] tnvedCodes;
+        private String[] uitCodes;
+        private String[] uituCodes;
+        private int size;
+
+        public ProductBatch() {
+            this(16);
+        }
+
+        /**
+         * @param expectedSize The expected number of products, to avoid growing the columns
+         */
+        public ProductBatch(int expectedSize) {
+            int capacity = Math.max(expectedSize, 1);
+            certificateDocuments = new int[capacity];
+            certificateDocumentDates = new int[capacity];
+            certificateDocumentNumbers = new String[capacity];
+            ownerInns = new int[capacity];
+            producerInns = new int[capacity];
+            productionDates = new int[capacity];
+            tnvedCodes = new int[capacity];
+            uitCodes = new String[capacity];
+            uituCodes = new String[capacity];
+        }
+
+        @Override
+        public boolean add(Product product) {
+            if (size == uitCodes.length) {
+                grow();
+            }
+            int i = size;
+            certificateDocuments[i] = encode(product.getCertificateDocument());
+            certificateDocumentDates[i] = encode(product.getCertificateDocumentDate());
+            certificateDocumentNumbers[i] = product.getCertificateDocumentNumber();
+            ownerInns[i] = encode(product.getOwnerInn());
+            producerInns[i] = encode(product.getProducerInn());
+            productionDates[i] = encode(product.getProductionDate());
+            tnvedCodes[i] = encode(product.getTnvedCode());
+            uitCodes[i] = product.getUitCode();
+            uituCodes[i] = product.getUituCode();
+            size++;
+            modCount++;
+            return true;
+        }
+
+        @Override
+        public Product get(int index) {
+            Objects.checkIndex(index, size);
+            return new Product(
+                    decode(certificateDocuments[index]),
+                    decodeDate(certificateDocumentDates[index]),
+                    certificateDocumentNumbers[index],
+                    decode(ownerInns[index]),
+                    decode(producerInns[index]),
+                    decodeDate(productionDates[index]),
+                    decode(tnvedCodes[index]),
+                    uitCodes[index],
+                    uituCodes[index]
+            );
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return The number of distinct dictionary encoded strings
+         */
+        public int dictionarySize() {
+            return dictionary.size();
+        }
+
+        String ownerInn(int index) {
+            return decode(ownerInns[index]);
+        }
+
+        String producerInn(int index) {
+            return decode(producerInns[index]);
+        }
+
+        String tnvedCode(int index) {
+            return decode(tnvedCodes[index]);
+        }
+
+        String uitCode(int index) {
+            return uitCodes[index];
+        }
+
+        String uituCode(int index) {
+            return uituCodes[index];
+        }
+
+        /**
+         * Write the products as a JSON array, in the same form as a serialized list of {@link Product}.
+         */
+        void write(JsonWriter out) throws IOException {
+            out.beginArray();
+            for (int i = 0; i < size; i++) {
+                out.beginObject();
+                out.name("certificate_document").value(decode(certificateDocuments[i]));
+                out.name("certificate_document_date").value(formatDate(certificateDocumentDates[i]));
+                out.name("certificate_document_number").value(certificateDocumentNumbers[i]);
+                out.name("owner_inn").value(decode(ownerInns[i]));
+                out.name("producer_inn").value(decode(producerInns[i]));
+                out.name("production_date").value(formatDate(productionDates[i]));
+                out.name("tnved_code").value(decode(tnvedCodes[i]));
+                out.name("uit_code").value(uitCodes[i]);
+                out.name("uitu_code").value(uituCodes[i]);
+                out.endObject();
+            }
+            out.endArray();
+        }
+
+        private void grow() {
+            int capacity = uitCodes.length * 2;
+            certificateDocuments = Arrays.copyOf(certificateDocuments, capacity);
+            certificateDocumentDates = Arrays.copyOf(certificateDocumentDates, capacity);
+            certificateDocumentNumbers = Arrays.copyOf(certificateDocumentNumbers, capacity);
+            ownerInns = Arrays.copyOf(ownerInns, capacity);
+            producerInns = Arrays.copyOf(producerInns, capacity);
+            productionDates = Arrays.copyOf(productionDates, capacity);
+            tnvedCodes = Arrays.copyOf(tnvedCodes, capacity);
+            uitCodes = Arrays.copyOf(uitCodes, capacity);
+            uituCodes = Arrays.copyOf(uituCodes, capacity);
+        }
+
+        private int encode(String value) {
+            if (value == null) {
+                return NO_VALUE;
+            }
+            Integer code = dictionaryCodes.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.add(value);
+                dictionaryCodes.put(value, code);
+            }
+            return code;
+        }
+
+        private String decode(int code) {
+            return code == NO_VALUE ? null : dictionary.get(code);
+        }
+
+        private static int encode(LocalDate date) {
+            return date == null ? NO_DATE : Math.toIntExact(date.toEpochDay());
+        }
+
+        private static LocalDate decodeDate(int epochDay) {
+            return epochDay == NO_DATE ? null : LocalDate.ofEpochDay(epochDay);
+        }
+
+        private static String formatDate(int epochDay) {
+            return epochDay == NO_DATE ? null : LocalDateAdapter.FORMATTER.format(LocalDate.ofEpochDay(epochDay));
+        }
+    }
+
+    /**
+     * Gson TypeAdapterFactory for the {@code products} list, writing a {@link ProductBatch} column by column.
+     * Gson picks adapters by the declared {@code List<Product>} type, so the batch needs its own hook.
+     */
+    private static class ProductListAdapterFactory implements TypeAdapterFactory {
+        private static final TypeToken<?> PRODUCT_LIST = TypeToken.getParameterized(List.class, Product.class);
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            if (!PRODUCT_LIST.equals(type)) {
+                return null;
+            }
+            TypeAdapter<List<Product>> delegate = (TypeAdapter<List<Product>>) gson.getDelegateAdapter(this, type);
+            return (TypeAdapter<T>) new TypeAdapter<List<Product>>() {
+                @Override
+                public void write(JsonWriter out, List<Product> value) throws IOException {
+                    if (value instanceof ProductBatch) {
+                        ((ProductBatch) value).write(out);
+                    } else {
+                        delegate.write(out, value);
+                    }
+                }
+
+                @Override
+                public List<Product> read(JsonReader in) throws IOException {
+                    return delegate.read(in);
+                }
+            };
+        }
+    }
+
+    /**
+     * Pre-submit validation of documents, so that malformed documents are rejected before
+     * a rate limit permit and a network round-trip are spent on them.
+     * A valid document is checked without allocating; all violations are collected in one pass.
+     */
+    public static final class DocumentValidator {
+        private static final Set<DocumentType> INTRODUCE_GOODS_TYPES = EnumSet.of(
+                DocumentType.LP_INTRODUCE_GOODS,
+                DocumentType.LP_INTRODUCE_GOODS_CSV,
+                DocumentType.LP_INTRODUCE_GOODS_XML);
+
+        private static final int[] INN10_WEIGHTS = {2, 4, 10, 3, 5, 9, 4, 6, 8};
+        private static final int[] INN12_WEIGHTS_11 = {7, 2, 4, 10, 3, 5, 9, 4, 6, 8};
+        private static final int[] INN12_WEIGHTS_12 = {3, 7, 2, 4, 10, 3, 5, 9, 4, 6, 8};
+
+        private static final int TNVED_LENGTH = 10;
+        private static final int GTIN_LENGTH = 14;
+        private static final int SSCC_LENGTH = 18;
+
+        private DocumentValidator() {
+        }
+
+        /**
+         * Validate a document of an unknown product group. Marking codes are accepted
+         * in every form used by any product group.
+         *
+         * @param document The document to validate
+         * @param type     The document type, which defines the required fields
+         * @return All violations found, empty if the document is valid
+         */
+        public static List<Violation> validate(Document document, DocumentType type) {
+            return validate(document, type, null);
+        }
+
+        /**
+         * Validate a document.
+         *
+         * @param document     The document to validate
+         * @param type         The document type, which defines the required fields
+         * @param productGroup The product group, which defines the marking code format; null if unknown
+         * @return All violations found, empty if the document is valid
+         */
+        public static List<Violation> validate(Document document, DocumentType type, ProductGroup productGroup) {
+            List<Violation> violations = null;
+            boolean required = INTRODUCE_GOODS_TYPES.contains(type);
+            // Tobacco pack codes start with the GTIN itself, without application identifiers
+            boolean plainCodes = productGroup == null || productGroup == ProductGroup.TOBACCO;
+
+            String participantInn = document.getParticipantInn();
+            if (participantInn == null && document.getDescription() != null) {
+                participantInn = document.getDescription().getParticipantInn();
+            }
+            violations = checkInn(violations, "owner_inn", document.getOwnerInn(), required);
+            violations = checkInn(violations, "participant_inn", participantInn, required);
+            violations = checkInn(violations, "producer_inn", document.getProducerInn(), required);
+            if (required && document.getProductionDate() == null) {
+                violations = add(violations, "production_date", "is required");
+            }
+            if (required && isBlank(document.getProductionType())) {
+                violations = add(violations, "production_type", "is required");
+            }
+
+            List<Product> products = document.getProducts();
+            if (products == null || products.isEmpty()) {
+                if (required) {
+                    violations = add(violations, "products", "must not be empty");
+                }
+            } else if (products instanceof ProductBatch) {
+                ProductBatch batch = (ProductBatch) products;
+                for (int i = 0; i < batch.size(); i++) {
+                    violations = checkProduct(violations, i, batch.ownerInn(i), batch.producerInn(i),
+                            batch.tnvedCode(i), batch.uitCode(i), batch.uituCode(i), required, plainCodes);
+                }
+            } else if (products instanceof RandomAccess) {
+                for (int i = 0; i < products.size(); i++) {
+                    violations = checkProduct(violations, i, products.get(i), required, plainCodes);
+                }
+            } else {
+                int i = 0;
+                for (Product product : products) {
+                    violations = checkProduct(violations, i++, product, required, plainCodes);
+                }
+            }
+            return violations == null ? Collections.emptyList() : violations;
+        }
+
+        /**
+         * Validate a document and throw if it is invalid.
+         *
+         * @throws ValidationException If the document has any violations
+         */
+        public static void requireValid(Document document, DocumentType type, ProductGroup productGroup) {
+            List<Violation> violations = validate(document, type, productGroup);
+            if (!violations.isEmpty()) {
+                throw new ValidationException(violations);
+            }
+        }
+
+        private static List<Violation> checkProduct(
+                List<Violation> violations, int index, Product product, boolean required, boolean plainCodes) {
+            if (product == null) {
+                return add(violations, "products[" + index + "]", "must not be null");
+            }
+            return checkProduct(violations, index, product.getOwnerInn(), product.getProducerInn(),
+                    product.getTnvedCode(), product.getUitCode(), product.getUituCode(), required, plainCodes);
+        }
+
+        private static List<Violation> checkProduct(
+                List<Violation> violations,
+                int index,
+                String ownerInn,
+                String producerInn,
+                String tnvedCode,
+                String uitCode,
+                String uituCode,
+                boolean required,
+                boolean plainCodes) {
+            if (ownerInn != null && !isValidInn(ownerInn)) {
+                violations = add(violations, productField(index, "owner_inn"), "is not a valid INN");
+            }
+            if (producerInn != null && !isValidInn(producerInn)) {
+                violations = add(violations, productField(index, "producer_inn"), "is not a valid INN");
+            }
+            if (tnvedCode == null) {
+                if (required) {
+                    violations = add(violations, productField(index, "tnved_code"), "is required");
+                }
+            } else if (tnvedCode.length() != TNVED_LENGTH || !isDigits(tnvedCode, 0, TNVED_LENGTH)) {
+                violations = add(violations, productField(index, "tnved_code"), "must be " + TNVED_LENGTH + " digits");
+            }
+            if (uitCode == null && uituCode == null) {
+                if (required) {
+                    violations = add(violations, productField(index, "uit_code"), "uit_code or uitu_code is required");
+                }
+            }
+            if (uitCode != null && !isValidUit(uitCode) && !(plainCodes && isValidPlainUit(uitCode))) {
+                violations = add(violations, productField(index, "uit_code"), plainCodes
+                        ? "must start with a GTIN with a valid check digit, optionally as 01, GTIN, 21 and a serial number"
+                        : "must be 01, a GTIN with a valid check digit, 21 and a serial number");
+            }
+            if (uituCode != null && !isValidUitu(uituCode)) {
+                violations = add(violations, productField(index, "uitu_code"), "must be an SSCC with a valid check digit");
+            }
+            return violations;
+        }
+
+        private static List<Violation> checkInn(List<Violation> violations, String field, String inn, boolean required) {
+            if (inn == null) {
+                return required ? add(violations, field, "is required") : violations;
+            }
+            return isValidInn(inn) ? violations : add(violations, field, "is not a valid INN");
+        }
+
+        /**
+         * Check the length and check digits of a legal entity (10 digits) or individual (12 digits) INN.
+         */
+        static boolean isValidInn(String inn) {
+            int length = inn.length();
+            if ((length != 10 && length != 12) || !isDigits(inn, 0, length)) {
+                return false;
+            }
+            if (length == 10) {
+                return checkDigit(inn, INN10_WEIGHTS) == inn.charAt(9) - '0';
+            }
+            return checkDigit(inn, INN12_WEIGHTS_11) == inn.charAt(10) - '0'
+                    && checkDigit(inn, INN12_WEIGHTS_12) == inn.charAt(11) - '0';
+        }
+
+        private static int checkDigit(String digits, int[] weights) {
+            int sum = 0;
+            for (int i = 0; i < weights.length; i++) {
+                sum += (digits.charAt(i) - '0') * weights[i];
+            }
+            return sum % 11 % 10;
+        }
+
+        /**
+         * Check the structure of a marking code: application identifier 01, GTIN-14, application identifier 21, serial.
+         */
+        static boolean isValidUit(String uit) {
+            int serialStart = 2 + GTIN_LENGTH + 2;
+            return uit.length() > serialStart
+                    && uit.startsWith("01")
+                    && isValidGs1(uit, 2, GTIN_LENGTH)
+                    && uit.startsWith("21", 2 + GTIN_LENGTH);
+        }
+
+        /**
+         * Check a marking code without application identifiers, such as a tobacco pack code: GTIN-14 and a serial.
+         */
+        static boolean isValidPlainUit(String uit) {
+            return uit.length() > GTIN_LENGTH && isValidGs1(uit, 0, GTIN_LENGTH);
+        }
+
+        /**
+         * Check a transport package code: an SSCC, optionally with its application identifier 00.
+         */
+        static boolean isValidUitu(String uitu) {
+            if (uitu.length() == SSCC_LENGTH + 2 && uitu.startsWith("00")) {
+                return isValidGs1(uitu, 2, SSCC_LENGTH);
+            }
+            return uitu.length() == SSCC_LENGTH && isValidGs1(uitu, 0, SSCC_LENGTH);
+        }
+
+        /**
+         * Check the GS1 mod 10 check digit of a numeric key such as a GTIN or an SSCC.
+         */
+        private static boolean isValidGs1(String value, int from, int length) {
+            if (!isDigits(value, from, from + length)) {
+                return false;
+            }
+            int sum = 0;
+            int last = from + length - 1;
+            for (int i = last - 1, weight = 3; i >= from; i--, weight = 4 - weight) {
+                sum += (value.charAt(i) - '0') * weight;
+            }
+            return (10 - sum % 10) % 10 == value.charAt(last) - '0';
+        }
+
+        private static boolean isDigits(String value, int from, int to) {
+            for (int i = from; i < to; i++) {
+                char c = value.charAt(i);
+                if (c < '0' || c > '9') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isBlank(String value) {
+            return value == null || value.trim().isEmpty();
+        }
+
+        private static String productField(int index, String field) {
+            return "products[" + index + "]." + field;
+        }
+
+        private static List<Violation> add(List<Violation> violations, String field, String message) {
+            if (violations == null) {
+                violations = new ArrayList<>();
+            }
+            violations.add(new Violation(field, message));
+            return violations;
+        }
+    }
+
+    /**
+     * Command-line bulk submission of product files, see {@link BulkSubmitter#USAGE}.
+     * Products are grouped into introduce goods documents by owner and product group and submitted
+     * through the rate-limited client. Progress is checkpointed, so a failed run resumes where it stopped.
+     * The checkpoint records the size and modification time of the file it belongs to and is deleted
+     * after a completed run, so it is never applied to a different export at the same path. It also records
+     * the options that decide how records are grouped into documents, as a resumed run must rebuild
+     * the same documents to know which of them were acknowledged.
+     * <p>
+     * Whenever one document is full, or too many records are pending, all pending documents are submitted,
+     * including partial documents of other owners. Each of them spends a rate limit permit, so a file
+     * dominated by one owner with many small owners in between submits many small documents;
+     * sorting the export by owner avoids that.
+     */
+    static class BulkSubmitter {
+        static final String USAGE = String.join(System.lineSeparator(),
+                "Usage: java CrptApi <products file> --signer <CertificateSigner class> [options]",
+                "  --format ndjson|csv       Input format, detected from the file extension by default",
+                "  --product-group <code>    Product group of records without a product_group field",
+                "  --env PRODUCTION|DEMO     API environment, PRODUCTION by default",
+                "  --rate <n>/<TimeUnit>     Request rate limit, 100/MINUTES by default",
+                "  --batch-size <n>          Maximum products per document, 1000 by default",
+                "  --max-pending <n>         Maximum products held in memory before all documents are submitted,",
+                "                            100000 by default",
+                "  --production-type <type>  Production type of the documents, OWN_PRODUCTION by default",
+                "  --checkpoint <file>       Checkpoint file, <products file>.checkpoint by default");
+
+        private static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+        private static final long RATE_LIMIT_BACKOFF_MILLIS = 100;
+        private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        private final CrptApi api;
+        private final CertificateSigner signer;
+        private final Path input;
+        private final Path checkpoint;
+        private final boolean csv;
+        private final ProductGroup defaultProductGroup;
+        private final String productionType;
+        private final int batchSize;
+        private final int maxPendingRecords;
+        private final int windowSize;
+        private final PrintStream out;
+        // Options that decide how records are grouped into documents, recorded in the checkpoint
+        private final String settings;
+
+        // Documents being collected, flushed together so that a single offset checkpoints them all
+        private final Map<ProductGroup, Map<String, ProductBatch>> pending = new EnumMap<>(ProductGroup.class);
+        // Bounds memory when records are spread over many owners and no single document fills up
+        private int pendingRecords;
+        private long records;
+        private long documents;
+        private long startNanos;
+        private long lastReportNanos;
+        private String fileIdentity;
+
+        BulkSubmitter(
+                CrptApi api,
+                CertificateSigner signer,
+                Path input,
+                Path checkpoint,
+                boolean csv,
+                ProductGroup defaultProductGroup,
+                String productionType,
+                int batchSize,
+                int maxPendingRecords,
+                int windowSize,
+                PrintStream out) {
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException("Batch size must be positive");
+            }
+            if (maxPendingRecords <= 0) {
+                throw new IllegalArgumentException("Maximum pending records must be positive");
+            }
+            this.api = api;
+            this.signer = signer;
+            this.input = input;
+            this.checkpoint = checkpoint;
+            this.csv = csv;
+            this.defaultProductGroup = defaultProductGroup;
+            this.productionType = productionType;
+            this.batchSize = batchSize;
+            this.maxPendingRecords = maxPendingRecords;
+            this.windowSize = windowSize;
+            this.out = out;
+            this.settings = String.join(",",
+                    "format=" + (csv ? "csv" : "ndjson"),
+                    "product-group=" + (defaultProductGroup == null ? "" : defaultProductGroup.getCode()),
+                    "batch-size=" + batchSize,
+                    "max-pending=" + maxPendingRecords);
+        }
+
+        /**
+         * Parse the command line, authenticate and submit the file.
+         *
+         * @return The process exit code
+         */
+        static int run(String[] args, PrintStream out) {
+            Map<String, String> options = new HashMap<>();
+            String file = null;
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].startsWith("--") && i + 1 < args.length) {
+                    options.put(args[i].substring(2), args[++i]);
+                } else if (file == null && !args[i].startsWith("--")) {
+                    file = args[i];
+                } else {
+                    out.println(USAGE);
+                    return 2;
+                }
+            }
+
+            BulkSubmitter submitter;
+            try {
+                if (file == null || !options.containsKey("signer")) {
+                    throw new IllegalArgumentException("Products file and signer are required");
+                }
+                String[] rate = options.getOrDefault("rate", "100/MINUTES").split("/", 2);
+                if (rate.length != 2) {
+                    throw new IllegalArgumentException("Rate must be <n>/<TimeUnit>");
+                }
+                String format = options.getOrDefault("format", file.toLowerCase().endsWith(".csv") ? "csv" : "ndjson");
+                if (!format.equals("csv") && !format.equals("ndjson")) {
+                    throw new IllegalArgumentException("Unknown format: " + format);
+                }
+                String productGroup = options.get("product-group");
+                CertificateSigner signer = (CertificateSigner) Class.forName(options.get("signer"))
+                        .getDeclaredConstructor()
+                        .newInstance();
+                CrptApi api = CrptApi.builder()
+                        .timeUnit(TimeUnit.valueOf(rate[1].toUpperCase()))
+                        .requestLimit(Integer.parseInt(rate[0]))
+                        .environment(Environment.valueOf(options.getOrDefault("env", "PRODUCTION").toUpperCase()))
+                        .build();
+                submitter = new BulkSubmitter(
+                        api,
+                        signer,
+                        Paths.get(file),
+                        Paths.get(options.getOrDefault("checkpoint", file + ".checkpoint")),
+                        format.equals("csv"),
+                        productGroup == null ? null : productGroupOf(productGroup),
+                        options.getOrDefault("production-type", "OWN_PRODUCTION"),
+                        Integer.parseInt(options.getOrDefault("batch-size", "1000")),
+                        Integer.parseInt(options.getOrDefault("max-pending", "100000")),
+                        DEFAULT_WINDOW_SIZE,
+                        out);
+            } catch (ReflectiveOperationException | ClassCastException | IllegalArgumentException e) {
+                out.println("Invalid arguments: " + e.getMessage());
+                out.println(USAGE);
+                return 2;
+            }
+
+            try (CrptApi api = submitter.api) {
+                api.authenticate(submitter.signer);
+                submitter.submit();
+                return 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                out.println("Interrupted, rerun to resume from the checkpoint");
+                return 1;
+            } catch (IOException | ApiException | RuntimeException e) {
+                out.println("Submission failed, rerun to resume from the checkpoint: " + e.getMessage());
+                return 1;
+            }
+        }
+
+        /**
+         * Submit all records after the checkpoint, checkpointing after every acknowledged document.
+         *
+         * @return The number of records read
+         */
+        long submit() throws IOException, InterruptedException, ApiException {
+            fileIdentity = Files.size(input) + " " + Files.getLastModifiedTime(input).toMillis();
+            long[] resume = readCheckpoint();
+            long flushOffset = resume[0];
+            long acknowledged = resume[1];
+
+            try (MappedRecordReader reader = new MappedRecordReader(input, windowSize)) {
+                String[] header = csv ? parseCsvLine(reader.readLine()) : null;
+                if (flushOffset > reader.position()) {
+                    reader.seek(flushOffset);
+                } else {
+                    flushOffset = reader.position();
+                }
+                startNanos = System.nanoTime();
+                lastReportNanos = startNanos;
+
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    JsonObject record = csv ? csvRecord(header, line) : JsonParser.parseString(line).getAsJsonObject();
+                    if (add(record)) {
+                        flush(flushOffset, acknowledged, reader.position());
+                        flushOffset = reader.position();
+                        acknowledged = 0;
+                    }
+                    report(reader, false);
+                }
+                flush(flushOffset, acknowledged, reader.position());
+                report(reader, true);
+            }
+            // A completed run must not be resumed, e.g. by the next export written to the same path
+            Files.deleteIfExists(checkpoint);
+            return records;
+        }
+
+        /**
+         * Add a record to the pending document of its owner and product group.
+         *
+         * @return true if that document is full or too many records are pending
+         */
+        private boolean add(JsonObject record) {
+            ProductGroup group = defaultProductGroup;
+            JsonElement code = record.remove("product_group");
+            if (code != null && !code.isJsonNull()) {
+                group = productGroupOf(code.getAsString());
+            }
+            if (group == null) {
+                throw new IllegalArgumentException("Record " + (records + 1) + " has no product group");
+            }
+            Product product = api.getGson().fromJson(record, Product.class);
+            ProductBatch batch = pending
+                    .computeIfAbsent(group, g -> new LinkedHashMap<>())
+                    .computeIfAbsent(product.getOwnerInn(), owner -> new ProductBatch());
+            batch.add(product);
+            records++;
+            pendingRecords++;
+            return batch.size() >= batchSize || pendingRecords >= maxPendingRecords;
+        }
+
+        /**
+         * Submit all pending documents. Their order only depends on the records read since {@code flushOffset},
+         * so after a restart the first {@code acknowledged} documents are known to be submitted already.
+         */
+        private void flush(long flushOffset, long acknowledged, long nextOffset)
+                throws IOException, InterruptedException, ApiException {
+            long document = 0;
+            for (Map.Entry<ProductGroup, Map<String, ProductBatch>> group : pending.entrySet()) {
+                for (Map.Entry<String, ProductBatch> owner : group.getValue().entrySet()) {
+                    if (document++ < acknowledged) {
+                        continue;
+                    }
+                    submitDocument(group.getKey(), owner.getKey(), owner.getValue());
+                    writeCheckpoint(flushOffset, document);
+                }
+            }
+            pending.clear();
+            pendingRecords = 0;
+            writeCheckpoint(nextOffset, 0);
+        }
+
+        private void submitDocument(ProductGroup group, String ownerInn, ProductBatch products)
+                throws IOException, InterruptedException, ApiException {
+            Product first = products.get(0);
+            Document document = new Document(
+                    new Description(ownerInn), null, null, DocumentType.LP_INTRODUCE_GOODS.getValue(), false,
+                    ownerInn, ownerInn, first.getProducerInn(), first.getProductionDate(), productionType,
+                    products, null, null);
+            String documentJson = api.getGson().toJson(document);
+            String productDocument = Base64.getEncoder().encodeToString(documentJson.getBytes(StandardCharsets.UTF_8));
+            String signature = signer.sign(documentJson);
+
+            while (true) {
+                try {
+                    api.createDocument(DocumentFormat.MANUAL, productDocument, signature,
+                            DocumentType.LP_INTRODUCE_GOODS, group);
+                    documents++;
+                    return;
+                } catch (TimeoutException e) {
+                    // The rate limit window is exhausted, wait for the next one
+                    Thread.sleep(RATE_LIMIT_BACKOFF_MILLIS);
+                }
+            }
+        }
+
+        private void report(MappedRecordReader reader, boolean done) {
+            long now = System.nanoTime();
+            if (!done && now - lastReportNanos < REPORT_INTERVAL_NANOS) {
+                return;
+            }
+            lastReportNanos = now;
+            double seconds = Math.max(now - startNanos, 1) / 1e9;
+            double progress = reader.size() == 0 ? 100 : 100.0 * reader.position() / reader.size();
+            out.printf("%s%,d records, %,d documents, %,.0f records/s, %.1f%% read%n",
+                    done ? "Done: " : "", records, documents, records / seconds, progress);
+        }
+
+        /**
+         * Read the checkpoint: the offset of the first unsubmitted flush, the number of its documents
+         * already acknowledged, the size and modification time of the checkpointed file and the options
+         * its documents were built with.
+         *
+         * @return The offset and the number of acknowledged documents
+         * @throws IllegalStateException If the checkpoint belongs to a different file or different options
+         */
+        private long[] readCheckpoint() throws IOException {
+            if (!Files.exists(checkpoint)) {
+                return new long[]{0, 0};
+            }
+            String[] parts = Files.readString(checkpoint, StandardCharsets.UTF_8).trim().split(" ", 5);
+            if (parts.length != 5 || !(parts[2] + " " + parts[3]).equals(fileIdentity)) {
+                throw new IllegalStateException("Checkpoint " + checkpoint + " does not belong to " + input
+                        + " as it is now; delete the checkpoint to submit the file from the start");
+            }
+            // Other options group the records into other documents, so the acknowledged count would be wrong
+            if (!parts[4].equals(settings)) {
+                throw new IllegalStateException("Checkpoint " + checkpoint + " was written with " + parts[4]
+                        + "; rerun with the same options to resume, or delete the checkpoint to start over");
+            }
+            return new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+        }
+
+        private void writeCheckpoint(long offset, long acknowledged) throws IOException {
+            Path temp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+            Files.writeString(temp, offset + " " + acknowledged + " " + fileIdentity + " " + settings,
+                    StandardCharsets.UTF_8);
+            Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private static ProductGroup productGroupOf(String code) {
+            for (ProductGroup group : ProductGroup.values()) {
+                if (group.getCode().equalsIgnoreCase(code) || group.name().equalsIgnoreCase(code)) {
+                    return group;
+                }
+            }
+            throw new IllegalArgumentException("Unknown product group: " + code);
+        }
+
+        private static JsonObject csvRecord(String[] header, String line) {
+            String[] values = parseCsvLine(line);
+            JsonObject record = new JsonObject();
+            for (int i = 0; i < header.length && i < values.length; i++) {
+                if (!values[i].isEmpty()) {
+                    record.addProperty(header[i], values[i]);
+                }
+            }
+            return record;
+        }
+
+        /**
+         * Split a CSV line; fields may be quoted, with doubled quotes inside. Quoted line breaks are not supported.
+         */
+        static String[] parseCsvLine(String line) {
+            if (line == null) {
+                throw new IllegalArgumentException("CSV header is missing");
+            }
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (quoted) {
+                    if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else if (c == '"') {
+                        quoted = false;
+                    } else {
+                        field.append(c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else {
+                    field.append(c);
+                }
+            }
+            fields.add(field.toString());
+            return fields.toArray(new String[0]);
+        }
+    }
+
+    /**
+     * Reads the lines of a file through memory-mapped windows, so files larger than memory are parsed incrementally.
+     * {@link #position()} is the offset of the next unread line and can be used to resume with {@link #seek(long)}.
+     */
+    static class MappedRecordReader implements Closeable {
+        private final FileChannel channel;
+        private final long size;
+        private final int windowSize;
+        private MappedByteBuffer window;
+        private long windowStart;
+        private long position;
+        private byte[] line = new byte[1024];
+
+        MappedRecordReader(Path path, int windowSize) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.size = channel.size();
+            this.windowSize = windowSize;
+        }
+
+        long size() {
+            return size;
+        }
+
+        long position() {
+            return position;
+        }
+
+        void seek(long position) {
+            this.position = position;
+        }
+
+        /**
+         * @return The next non-empty line without its line terminator, or null at the end of the file
+         */
+        String readLine() throws IOException {
+            while (position < size) {
+                int length = 0;
+                while (position < size) {
+                    if (window == null || position < windowStart || position >= windowStart + window.limit()) {
+                        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(windowSize, size - position));
+                        windowStart = position;
+                    }
+                    int start = (int) (position - windowStart);
+                    int end = start;
+                    while (end < window.limit() && window.get(end) != '\n') {
+                        end++;
+                    }
+
+                    int chunk = end - start;
+                    if (length + chunk > line.length) {
+                        line = Arrays.copyOf(line, Math.max(line.length * 2, length + chunk));
+                    }
+                    window.position(start);
+                    window.get(line, length, chunk);
+                    length += chunk;
+                    position += chunk;
+
+                    if (end < window.limit()) {
+                        // Skip the line terminator
+                        position++;
+                        break;
+                    }
+                }
+                if (length > 0 && line[length - 1] == '\r') {
+                    length--;
+                }
+                if (length > 0) {
+                    return new String(line, 0, length, StandardCharsets.UTF_8);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            window = null;
+            channel.close();
+        }
+    }
+
     /**
      * Gson TypeAdapter for {@link LocalDate}.
      */
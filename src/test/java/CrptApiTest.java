@@ -1,24 +1,42 @@
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
@@ -26,12 +44,17 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -44,7 +67,7 @@ public class CrptApiTest {
     private HttpClient mockHttpClient;
 
     @Mock
-    private HttpResponse<String> mockHttpResponse;
+    private HttpResponse<InputStream> mockHttpResponse;
 
     @Captor
     private ArgumentCaptor<HttpRequest> httpRequestCaptor;
@@ -78,7 +101,7 @@ public class CrptApiTest {
             setMockHttpClient(api, mockHttpClient);
             when(mockHttpClient.send(any(), any(HttpResponse.BodyHandler.class))).thenReturn(mockHttpResponse);
             when(mockHttpResponse.statusCode()).thenReturn(200);
-            when(mockHttpResponse.body()).thenReturn("{\"document_id\":\"test-id\",\"status\":\"OK\"}");
+            when(mockHttpResponse.body()).thenAnswer(invocation -> jsonBody("{\"document_id\":\"test-id\",\"status\":\"OK\"}"));
             
             // Set auth token to bypass authentication check
             setAuthToken(api, "dummy-token");
@@ -109,6 +132,42 @@ public class CrptApiTest {
         assertTrue(timeoutCount.get() > 0, "Should have timed out some requests.");
     }
 
+    @Test
+    void testRateLimitWindowRefillsWithoutTimerThread() throws Exception {
+        // The first instance starts the shared HTTP client
+        new CrptApi(TimeUnit.SECONDS, 1);
+        int threadsBefore = Thread.activeCount();
+        for (int i = 0; i < 100; i++) {
+            new CrptApi(TimeUnit.SECONDS, 1);
+        }
+        assertTrue(Thread.activeCount() <= threadsBefore, "Instances should not start their own threads.");
+
+        api = new CrptApi(TimeUnit.SECONDS, 1);
+        setMockHttpClient(api, mockHttpClient);
+        setAuthToken(api, "dummy-token");
+        when(mockHttpClient.send(any(), any(HttpResponse.BodyHandler.class))).thenReturn(mockHttpResponse);
+        when(mockHttpResponse.statusCode()).thenReturn(200);
+        when(mockHttpResponse.body()).thenAnswer(invocation -> jsonBody("{\"document_id\":\"test-id\"}"));
+
+        api.createIntroduceGoodsDocument(testDocument, "signature", CrptApi.ProductGroup.MILK);
+        assertThrows(TimeoutException.class, () ->
+                api.createIntroduceGoodsDocument(testDocument, "signature", CrptApi.ProductGroup.MILK));
+
+        Thread.sleep(1100);
+        assertEquals("test-id",
+                api.createIntroduceGoodsDocument(testDocument, "signature", CrptApi.ProductGroup.MILK).getDocumentId());
+    }
+
+    @Test
+    void createDocument_shouldThrowIllegalStateException_whenClosed() throws Exception {
+        try (CrptApi closedApi = new CrptApi(TimeUnit.MINUTES, 5)) {
+            setAuthToken(closedApi, "dummy-token");
+            closedApi.close();
+            assertThrows(IllegalStateException.class, () ->
+                    closedApi.createIntroduceGoodsDocument(testDocument, "signature", CrptApi.ProductGroup.MILK));
+        }
+    }
+
     @Test
     void createDocument_shouldThrowIllegalStateException_whenNotAuthenticated() {
         api = new CrptApi(TimeUnit.MINUTES, 5);
@@ -127,7 +186,7 @@ public class CrptApiTest {
         when(mockHttpClient.send(httpRequestCaptor.capture(), any(HttpResponse.BodyHandler.class)))
                 .thenReturn(mockHttpResponse);
         when(mockHttpResponse.statusCode()).thenReturn(200);
-        when(mockHttpResponse.body()).thenReturn("{\"document_id\":\"some-id\"}");
+        when(mockHttpResponse.body()).thenAnswer(invocation -> jsonBody("{\"document_id\":\"some-id\"}"));
 
         api.createIntroduceGoodsDocument(testDocument, "test-signature", CrptApi.ProductGroup.SHOES);
 
@@ -158,6 +217,149 @@ public class CrptApiTest {
         assertEquals("1234567890", productDocumentMap.get("owner_inn"));
     }
     
+    @Test
+    void createDocument_shouldEscapeVariableEnvelopeParts() throws Exception {
+        api = new CrptApi(TimeUnit.MINUTES, 5);
+        setMockHttpClient(api, mockHttpClient);
+        setAuthToken(api, "test-token");
+
+        when(mockHttpClient.send(httpRequestCaptor.capture(), any(HttpResponse.BodyHandler.class)))
+                .thenReturn(mockHttpResponse);
+        when(mockHttpResponse.statusCode()).thenReturn(200);
+        when(mockHttpResponse.body()).thenAnswer(invocation -> jsonBody("{\"document_id\":\"some-id\"}"));
+
+        String signature = "sig \"quoted\" \\ line\nbreak";
+        api.createDocument(CrptApi.DocumentFormat.XML, "PGRvYy8+", signature,
+                CrptApi.DocumentType.LP_SHIP_GOODS_XML, CrptApi.ProductGroup.TIRES);
+
+        HttpRequest sentRequest = httpRequestCaptor.getValue();
+        assertTrue(sentRequest.uri().toString().endsWith("/lk/documents/create?pg=tires"));
+
+        Map<String, String> bodyMap = new Gson().fromJson(getRequestBody(sentRequest), Map.class);
+        assertEquals("XML", bodyMap.get("document_format"));
+        assertEquals("PGRvYy8+", bodyMap.get("product_document"));
+        assertEquals("tires", bodyMap.get("product_group"));
+        assertEquals(signature, bodyMap.get("signature"));
+        assertEquals("LP_SHIP_GOODS_XML", bodyMap.get("type"));
+    }
+
+    @Test
+    void createDocument_shouldParseErrorBody_whenStatusIsError() throws Exception {
+        api = new CrptApi(TimeUnit.MINUTES, 5);
+        setMockHttpClient(api, mockHttpClient);
+        setAuthToken(api, "test-token");
+
+        when(mockHttpClient.send(any(), any(HttpResponse.BodyHandler.class))).thenReturn(mockHttpResponse);
+        when(mockHttpResponse.statusCode()).thenReturn(400);
+        when(mockHttpResponse.body()).thenAnswer(invocation ->
+                jsonBody("{\"error_message\":\"Invalid INN\",\"unknown\":{\"nested\":[1,2]}}"));
+
+        IOException e = assertThrows(IOException.class, () ->
+                api.createIntroduceGoodsDocument(testDocument, "signature", CrptApi.ProductGroup.MILK));
+
+        CrptApi.ApiException cause = assertInstanceOf(CrptApi.ApiException.class, e.getCause());
+        assertEquals(400, cause.getStatusCode());
+        assertEquals("Invalid INN", cause.getMessage());
+    }
+
+    @Test
+    void builder_shouldRejectHttpSettingsForInjectedClient() {
+        assertThrows(IllegalArgumentException.class, () -> CrptApi.builder()
+                .timeUnit(TimeUnit.SECONDS)
+                .requestLimit(5)
+                .httpClient(HttpClient.newHttpClient())
+                .connectTimeout(Duration.ofSeconds(1))
+                .build());
+        assertThrows(IllegalArgumentException.class, () -> CrptApi.builder()
+                .timeUnit(TimeUnit.SECONDS)
+                .requestLimit(5)
+                .requestTimeout(Duration.ZERO)
+                .build());
+    }
+
+    @Test
+    void requestTimeout_shouldFailHungRequest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService stubExecutor = Executors.newCachedThreadPool();
+        HttpServer stub = startStub(exchange -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.close();
+        }, stubExecutor);
+        try {
+            api = CrptApi.builder()
+                    .timeUnit(TimeUnit.SECONDS)
+                    .requestLimit(5)
+                    .baseUrl(stubBaseUrl(stub))
+                    .connectTimeout(Duration.ofSeconds(1))
+                    .requestTimeout(Duration.ofSeconds(1))
+                    .build();
+            api.authenticate(data -> "signed-" + data);
+
+            IOException e = assertTimeoutPreemptively(Duration.ofSeconds(5), () -> assertThrows(IOException.class,
+                    () -> api.createIntroduceGoodsDocument(testDocument, "signature", CrptApi.ProductGroup.MILK)));
+            assertInstanceOf(HttpTimeoutException.class, e.getCause());
+        } finally {
+            release.countDown();
+            stub.stop(0);
+            stubExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    void sharedExecutor_shouldSustainConcurrentThroughputAgainstStub() throws Exception {
+        // Every response takes 20 ms, so serial requests could not exceed 50 per second
+        long latencyMillis = 20;
+        ExecutorService stubExecutor = Executors.newCachedThreadPool();
+        HttpServer stub = startStub(exchange -> {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, "{\"document_id\":\"stub-id\",\"status\":\"OK\"}");
+        }, stubExecutor);
+        ExecutorService clientExecutor = Executors.newFixedThreadPool(4);
+        ExecutorService callers = Executors.newFixedThreadPool(16);
+        try {
+            int requests = 200;
+            api = CrptApi.builder()
+                    .timeUnit(TimeUnit.MINUTES)
+                    .requestLimit(requests)
+                    .baseUrl(stubBaseUrl(stub))
+                    .httpVersion(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(Duration.ofSeconds(1))
+                    .requestTimeout(Duration.ofSeconds(5))
+                    .executor(clientExecutor)
+                    .build();
+            api.authenticate(data -> "signed-" + data);
+
+            long start = System.nanoTime();
+            List<Future<CrptApi.CreateDocumentResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                responses.add(callers.submit(() ->
+                        api.createIntroduceGoodsDocument(testDocument, "signature", CrptApi.ProductGroup.MILK)));
+            }
+            for (Future<CrptApi.CreateDocumentResponse> response : responses) {
+                assertEquals("stub-id", response.get(10, TimeUnit.SECONDS).getDocumentId());
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double throughput = requests / seconds;
+
+            double serialThroughput = 1000.0 / latencyMillis;
+            assertTrue(throughput > 2 * serialThroughput,
+                    String.format("Throughput was %.0f requests/s, serial requests reach %.0f", throughput, serialThroughput));
+        } finally {
+            callers.shutdownNow();
+            clientExecutor.shutdownNow();
+            stub.stop(0);
+            stubExecutor.shutdownNow();
+        }
+    }
+
     @Test
     void testLocalDateSerialization() {
         Gson gson = new GsonBuilder()
@@ -175,6 +377,500 @@ public class CrptApiTest {
         assertEquals(date, deserializedDoc.getProductionDate(), "Deserialized LocalDate should match original");
     }
 
+    @Test
+    void productBatch_shouldSerializeToSameJsonAsProductList() {
+        api = new CrptApi(TimeUnit.MINUTES, 5);
+        List<CrptApi.Product> products = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            products.add(new CrptApi.Product(
+                    i % 3 == 0 ? null : "CONFORMITY_CERTIFICATE",
+                    i % 2 == 0 ? LocalDate.of(2023, 1, 15).plusDays(i) : null,
+                    "cert-" + i,
+                    "1234567890",
+                    "0987654321",
+                    LocalDate.of(2023, 2, 1),
+                    "6401100000",
+                    "uit-\"" + i,
+                    i % 5 == 0 ? "uitu-" + i : null
+            ));
+        }
+        CrptApi.ProductBatch batch = new CrptApi.ProductBatch();
+        batch.addAll(products);
+
+        CrptApi.Document listDocument = createTestDocument();
+        listDocument.setProducts(products);
+        CrptApi.Document batchDocument = createTestDocument();
+        batchDocument.setProducts(batch);
+
+        assertEquals(api.getGson().toJson(listDocument), api.getGson().toJson(batchDocument));
+        assertEquals(products, batch);
+        assertEquals(4, batch.dictionarySize(), "Repeated fields should share dictionary entries.");
+    }
+
+    @Test
+    void documentValidator_shouldReportAllViolationsInOnePass() {
+        CrptApi.Document document = createValidDocument(Collections.singletonList(new CrptApi.Product(
+                null, null, null, "7707083894", null, null, "64011", "0104601234567890" + "21abc", "123"
+        )));
+        document.setOwnerInn("1234567890");
+        document.setProductionDate(null);
+
+        List<CrptApi.Violation> violations =
+                CrptApi.DocumentValidator.validate(document, CrptApi.DocumentType.LP_INTRODUCE_GOODS);
+
+        assertEquals(List.of(
+                        "owner_inn",
+                        "production_date",
+                        "products[0].owner_inn",
+                        "products[0].tnved_code",
+                        "products[0].uit_code",
+                        "products[0].uitu_code"),
+                violations.stream().map(CrptApi.Violation::getField).collect(Collectors.toList()));
+    }
+
+    @Test
+    void documentValidator_shouldApplyMarkingCodeFormatOfProductGroup() {
+        String tobaccoPackCode = "04601234567893" + "-MUK5Nd" + "AAAA" + "abcd";
+        CrptApi.Document document = createValidDocument(Collections.singletonList(new CrptApi.Product(
+                null, null, null, null, null, null, "2402209000", tobaccoPackCode, null
+        )));
+
+        assertEquals(Collections.emptyList(), CrptApi.DocumentValidator.validate(
+                document, CrptApi.DocumentType.LP_INTRODUCE_GOODS, CrptApi.ProductGroup.TOBACCO));
+        assertEquals(Collections.emptyList(), CrptApi.DocumentValidator.validate(
+                document, CrptApi.DocumentType.LP_INTRODUCE_GOODS));
+        assertEquals(List.of("products[0].uit_code"), CrptApi.DocumentValidator.validate(
+                        document, CrptApi.DocumentType.LP_INTRODUCE_GOODS, CrptApi.ProductGroup.MILK)
+                .stream().map(CrptApi.Violation::getField).collect(Collectors.toList()));
+    }
+
+    @Test
+    void documentValidator_shouldValidateLargeDocumentsQuickly() {
+        CrptApi.ProductBatch batch = new CrptApi.ProductBatch(100_000);
+        for (int i = 0; i < 100_000; i++) {
+            batch.add(new CrptApi.Product(null, null, null, "7707083893", "500100732259", null,
+                    "6401100000", "0104601234567893" + "21" + i, i % 2 == 0 ? null : "00146012345000000019"));
+        }
+        CrptApi.Document batchDocument = createValidDocument(batch);
+        CrptApi.Document listDocument = createValidDocument(new ArrayList<>(batch));
+
+        long start = System.nanoTime();
+        assertEquals(Collections.emptyList(),
+                CrptApi.DocumentValidator.validate(batchDocument, CrptApi.DocumentType.LP_INTRODUCE_GOODS));
+        assertEquals(Collections.emptyList(),
+                CrptApi.DocumentValidator.validate(listDocument, CrptApi.DocumentType.LP_INTRODUCE_GOODS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(elapsedMillis < 1000, "Validating 200k products took " + elapsedMillis + " ms");
+    }
+
+    @Test
+    void createIntroduceGoodsDocument_shouldRejectInvalidDocumentBeforeSpendingPermit() throws Exception {
+        api = CrptApi.builder()
+                .timeUnit(TimeUnit.MINUTES)
+                .requestLimit(1)
+                .validateDocuments(true)
+                .build();
+        setMockHttpClient(api, mockHttpClient);
+        setAuthToken(api, "test-token");
+
+        CrptApi.ValidationException e = assertThrows(CrptApi.ValidationException.class, () ->
+                api.createIntroduceGoodsDocument(testDocument, "signature", CrptApi.ProductGroup.MILK));
+        assertFalse(e.getViolations().isEmpty());
+        verifyNoInteractions(mockHttpClient);
+
+        when(mockHttpClient.send(any(), any(HttpResponse.BodyHandler.class))).thenReturn(mockHttpResponse);
+        when(mockHttpResponse.statusCode()).thenReturn(200);
+        when(mockHttpResponse.body()).thenAnswer(invocation -> jsonBody("{\"document_id\":\"valid-id\"}"));
+
+        CrptApi.Document validDocument = createValidDocument(Collections.singletonList(new CrptApi.Product(
+                null, null, null, null, null, null, "6401100000", "0104601234567893" + "21serial", null
+        )));
+        assertEquals("valid-id", api.createIntroduceGoodsDocument(validDocument, "signature", CrptApi.ProductGroup.MILK)
+                .getDocumentId());
+    }
+
+    @Test
+    void responseCache_shouldAnswerDuplicatesWithoutSpendingPermits() throws Exception {
+        api = CrptApi.builder()
+                .timeUnit(TimeUnit.MINUTES)
+                .requestLimit(1)
+                .responseCacheSize(10)
+                .build();
+        setMockHttpClient(api, mockHttpClient);
+        setAuthToken(api, "test-token");
+        when(mockHttpClient.send(any(), any(HttpResponse.BodyHandler.class))).thenReturn(mockHttpResponse);
+        when(mockHttpResponse.statusCode()).thenReturn(200);
+        when(mockHttpResponse.body()).thenAnswer(invocation -> jsonBody("{\"document_id\":\"cached-id\"}"));
+
+        CrptApi.CreateDocumentResponse first =
+                api.createIntroduceGoodsDocument(testDocument, "signature", CrptApi.ProductGroup.MILK);
+        CrptApi.CreateDocumentResponse duplicate =
+                api.createIntroduceGoodsDocument(testDocument, "signature", CrptApi.ProductGroup.MILK);
+
+        assertEquals(first, duplicate);
+        assertNotSame(first, duplicate);
+        verify(mockHttpClient, times(1)).send(any(), any(HttpResponse.BodyHandler.class));
+
+        // A caller modifying its response does not change what duplicates get
+        duplicate.setDocumentId("changed-id");
+        assertEquals("cached-id",
+                api.createIntroduceGoodsDocument(testDocument, "signature", CrptApi.ProductGroup.MILK).getDocumentId());
+        assertThrows(TimeoutException.class, () ->
+                api.createIntroduceGoodsDocument(testDocument, "other-signature", CrptApi.ProductGroup.MILK));
+    }
+
+    @Test
+    void responseCache_shouldCoalesceInFlightDuplicates() throws Exception {
+        api = CrptApi.builder()
+                .timeUnit(TimeUnit.MINUTES)
+                .requestLimit(10)
+                .responseCacheSize(10)
+                .build();
+        setMockHttpClient(api, mockHttpClient);
+        setAuthToken(api, "test-token");
+
+        CountDownLatch sent = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(mockHttpClient.send(any(), any(HttpResponse.BodyHandler.class))).thenAnswer(invocation -> {
+            sent.countDown();
+            release.await();
+            return mockHttpResponse;
+        });
+        when(mockHttpResponse.statusCode()).thenReturn(200);
+        when(mockHttpResponse.body()).thenAnswer(invocation -> jsonBody("{\"document_id\":\"shared-id\"}"));
+
+        ExecutorService callers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<CrptApi.CreateDocumentResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                responses.add(callers.submit(() ->
+                        api.createIntroduceGoodsDocument(testDocument, "signature", CrptApi.ProductGroup.MILK)));
+            }
+            assertTrue(sent.await(5, TimeUnit.SECONDS));
+            Thread.sleep(100);
+            release.countDown();
+
+            for (Future<CrptApi.CreateDocumentResponse> response : responses) {
+                assertEquals("shared-id", response.get(5, TimeUnit.SECONDS).getDocumentId());
+            }
+            verify(mockHttpClient, times(1)).send(any(), any(HttpResponse.BodyHandler.class));
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    void responseCache_shouldReleaseEntryWhenRequestThrowsError() throws Exception {
+        api = CrptApi.builder()
+                .timeUnit(TimeUnit.MINUTES)
+                .requestLimit(10)
+                .responseCacheSize(10)
+                .build();
+        setMockHttpClient(api, mockHttpClient);
+        setAuthToken(api, "test-token");
+        when(mockHttpClient.send(any(), any(HttpResponse.BodyHandler.class)))
+                .thenThrow(new OutOfMemoryError("test"))
+                .thenReturn(mockHttpResponse);
+        when(mockHttpResponse.statusCode()).thenReturn(200);
+        when(mockHttpResponse.body()).thenAnswer(invocation -> jsonBody("{\"document_id\":\"retried-id\"}"));
+
+        assertThrows(OutOfMemoryError.class, () ->
+                api.createIntroduceGoodsDocument(testDocument, "signature", CrptApi.ProductGroup.MILK));
+        CrptApi.CreateDocumentResponse retried = assertTimeoutPreemptively(Duration.ofSeconds(5), () ->
+                api.createIntroduceGoodsDocument(testDocument, "signature", CrptApi.ProductGroup.MILK));
+
+        assertEquals("retried-id", retried.getDocumentId());
+        verify(mockHttpClient, times(2)).send(any(), any(HttpResponse.BodyHandler.class));
+    }
+
+    @Test
+    void responseCache_shouldExpireEntriesAfterTtl() throws Exception {
+        api = CrptApi.builder()
+                .timeUnit(TimeUnit.MINUTES)
+                .requestLimit(10)
+                .responseCacheSize(10)
+                .responseCacheTtl(Duration.ofMillis(50))
+                .build();
+        setMockHttpClient(api, mockHttpClient);
+        setAuthToken(api, "test-token");
+        when(mockHttpClient.send(any(), any(HttpResponse.BodyHandler.class))).thenReturn(mockHttpResponse);
+        when(mockHttpResponse.statusCode()).thenReturn(200);
+        when(mockHttpResponse.body()).thenAnswer(invocation -> jsonBody("{\"document_id\":\"some-id\"}"));
+
+        api.createIntroduceGoodsDocument(testDocument, "signature", CrptApi.ProductGroup.MILK);
+        Thread.sleep(100);
+        api.createIntroduceGoodsDocument(testDocument, "signature", CrptApi.ProductGroup.MILK);
+
+        verify(mockHttpClient, times(2)).send(any(), any(HttpResponse.BodyHandler.class));
+    }
+
+    @Test
+    void parallelSerialization_shouldProduceSameBase64AsSequential() {
+        api = new CrptApi(TimeUnit.MINUTES, 5);
+        CrptApi parallelApi = CrptApi.builder()
+                .timeUnit(TimeUnit.MINUTES)
+                .requestLimit(5)
+                .parallelSerializationThreshold(1)
+                .build();
+
+        List<CrptApi.Product> products = new ArrayList<>();
+        for (int i = 0; i < 20_001; i++) {
+            products.add(new CrptApi.Product(
+                    i % 7 == 0 ? null : "Сертификат соответствия",
+                    i % 2 == 0 ? LocalDate.of(2023, 1, 15).plusDays(i % 365) : null,
+                    "cert-" + i,
+                    "7707083893",
+                    "500100732259",
+                    LocalDate.of(2023, 2, 1),
+                    "6401100000",
+                    "0104601234567893" + "21<" + i + ">",
+                    i % 3 == 0 ? "00146012345000000019" : null
+            ));
+        }
+        CrptApi.Document document = createValidDocument(products);
+        CrptApi.Document batchDocument = createValidDocument(new CrptApi.ProductBatch(products.size()));
+        batchDocument.getProducts().addAll(products);
+
+        String sequential = api.encodeDocument(document);
+        assertEquals(sequential, parallelApi.encodeDocument(document));
+        assertEquals(sequential, parallelApi.encodeDocument(batchDocument));
+        assertEquals(sequential, parallelApi.encodeDocument(createValidDocument(new LinkedList<>(products))));
+
+        CrptApi.Document singleProduct = createValidDocument(products.subList(0, 1));
+        assertEquals(api.encodeDocument(singleProduct), parallelApi.encodeDocument(singleProduct));
+    }
+
+    @Test
+    void mappedRecordReader_shouldReadLinesAcrossWindows(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("records.txt");
+        Files.writeString(file, "first\r\n\nвторая строка\nthird line is longer than a window", StandardCharsets.UTF_8);
+
+        try (CrptApi.MappedRecordReader reader = new CrptApi.MappedRecordReader(file, 5)) {
+            assertEquals("first", reader.readLine());
+            long second = reader.position();
+            assertEquals("вторая строка", reader.readLine());
+            assertEquals("third line is longer than a window", reader.readLine());
+            assertNull(reader.readLine());
+            assertEquals(reader.size(), reader.position());
+
+            reader.seek(second);
+            assertEquals("вторая строка", reader.readLine());
+        }
+    }
+
+    @Test
+    void bulkSubmitter_shouldResumeFromCheckpointWithoutDuplicates(@TempDir Path dir) throws Exception {
+        Path input = dir.resolve("products.ndjson");
+        Path checkpoint = dir.resolve("products.ndjson.checkpoint");
+        List<String> expected = writeProducts(input, "uit-", 23);
+
+        List<String> submitted = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger failingRequest = new AtomicInteger(3);
+        ExecutorService stubExecutor = Executors.newCachedThreadPool();
+        HttpServer stub = startRecordingStub(submitted, failingRequest, stubExecutor);
+        try {
+            authenticateAgainst(stub);
+            PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+
+            assertThrows(IOException.class, () -> newBulkSubmitter(input, checkpoint, out).submit());
+            assertTrue(Files.exists(checkpoint));
+            assertEquals(23, newBulkSubmitter(input, checkpoint, out).submit());
+
+            assertEquals(sorted(expected), sorted(submitted), "Every product should be submitted exactly once.");
+            assertFalse(Files.exists(checkpoint), "A completed run should delete its checkpoint.");
+        } finally {
+            stub.stop(0);
+            stubExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    void bulkSubmitter_shouldNotApplyCheckpointToDifferentFile(@TempDir Path dir) throws Exception {
+        Path input = dir.resolve("products.ndjson");
+        Path checkpoint = dir.resolve("products.ndjson.checkpoint");
+        writeProducts(input, "old-", 23);
+
+        List<String> submitted = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger failingRequest = new AtomicInteger(3);
+        ExecutorService stubExecutor = Executors.newCachedThreadPool();
+        HttpServer stub = startRecordingStub(submitted, failingRequest, stubExecutor);
+        try {
+            authenticateAgainst(stub);
+            PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+            assertThrows(IOException.class, () -> newBulkSubmitter(input, checkpoint, out).submit());
+            failingRequest.set(0);
+
+            // A larger export replaces the file while the failed run's checkpoint is still there
+            List<String> larger = writeProducts(input, "larger-", 40);
+            Files.setLastModifiedTime(input, FileTime.fromMillis(Files.getLastModifiedTime(input).toMillis() + 1000));
+            submitted.clear();
+            assertThrows(IllegalStateException.class, () -> newBulkSubmitter(input, checkpoint, out).submit());
+            assertTrue(submitted.isEmpty());
+
+            Files.delete(checkpoint);
+            assertEquals(40, newBulkSubmitter(input, checkpoint, out).submit());
+            assertEquals(sorted(larger), sorted(submitted));
+
+            // The completed run left no checkpoint, so the next, smaller export is submitted in full
+            List<String> smaller = writeProducts(input, "smaller-", 5);
+            submitted.clear();
+            assertEquals(5, newBulkSubmitter(input, checkpoint, out).submit());
+            assertEquals(sorted(smaller), sorted(submitted));
+        } finally {
+            stub.stop(0);
+            stubExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    void bulkSubmitter_shouldNotResumeWithDifferentOptions(@TempDir Path dir) throws Exception {
+        Path input = dir.resolve("products.ndjson");
+        Path checkpoint = dir.resolve("products.ndjson.checkpoint");
+        List<String> expected = writeProducts(input, "uit-", 24);
+
+        List<String> submitted = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger failingRequest = new AtomicInteger(4);
+        ExecutorService stubExecutor = Executors.newCachedThreadPool();
+        HttpServer stub = startRecordingStub(submitted, failingRequest, stubExecutor);
+        try {
+            authenticateAgainst(stub);
+            PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+            assertThrows(IOException.class, () -> newBulkSubmitter(input, checkpoint, out).submit());
+            String failed = Files.readString(checkpoint);
+            List<String> submittedBeforeFailure = new ArrayList<>(submitted);
+
+            // Other options would build other documents and skip or repeat products
+            assertThrows(IllegalStateException.class, () -> newBulkSubmitter(input, checkpoint, 5, out).submit());
+            assertEquals(submittedBeforeFailure, submitted);
+            assertEquals(failed, Files.readString(checkpoint));
+
+            newBulkSubmitter(input, checkpoint, out).submit();
+            assertEquals(sorted(expected), sorted(submitted), "Every product should be submitted exactly once.");
+        } finally {
+            stub.stop(0);
+            stubExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    void bulkSubmitter_shouldFlushWhenTooManyRecordsArePending(@TempDir Path dir) throws Exception {
+        Path input = dir.resolve("products.ndjson");
+        Path checkpoint = dir.resolve("products.ndjson.checkpoint");
+        StringBuilder ndjson = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            // Every record has its own owner, so no document ever reaches the batch size
+            expected.add("uit-" + i);
+            ndjson.append("{\"owner_inn\":\"").append(7707083000L + i)
+                    .append("\",\"tnved_code\":\"6401100000\",\"uit_code\":\"uit-").append(i).append("\"}\n");
+        }
+        Files.writeString(input, ndjson);
+
+        List<String> submitted = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger failingRequest = new AtomicInteger(8);
+        ExecutorService stubExecutor = Executors.newCachedThreadPool();
+        HttpServer stub = startRecordingStub(submitted, failingRequest, stubExecutor);
+        try {
+            authenticateAgainst(stub);
+            PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+
+            assertThrows(IOException.class, () -> newBulkSubmitter(input, checkpoint, 5, out).submit());
+            // The failure hit the third document of the second flush of five records
+            String[] progress = Files.readString(checkpoint).split(" ");
+            assertTrue(Long.parseLong(progress[0]) > 0);
+            assertEquals(2, Long.parseLong(progress[1]));
+
+            // The rerun starts after the first flush and skips the two acknowledged documents of the second
+            assertEquals(25, newBulkSubmitter(input, checkpoint, 5, out).submit());
+            assertEquals(sorted(expected), sorted(submitted), "Every product should be submitted exactly once.");
+        } finally {
+            stub.stop(0);
+            stubExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    void bulkSubmitter_shouldPrintUsageForMissingArguments() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertEquals(2, CrptApi.BulkSubmitter.run(new String[]{"products.ndjson"}, new PrintStream(output)));
+        assertTrue(output.toString().contains("Usage:"));
+    }
+
+    /**
+     * Write an NDJSON products file alternating between two owners, with every fifth product in another group.
+     *
+     * @return The written uit codes
+     */
+    private static List<String> writeProducts(Path file, String uitPrefix, int count) throws IOException {
+        StringBuilder ndjson = new StringBuilder();
+        List<String> uitCodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            uitCodes.add(uitPrefix + i);
+            ndjson.append("{\"owner_inn\":\"").append(i % 2 == 0 ? "7707083893" : "500100732259")
+                    .append("\",\"tnved_code\":\"6401100000\",\"uit_code\":\"").append(uitPrefix).append(i).append('"')
+                    .append(i % 5 == 0 ? ",\"product_group\":\"shoes\"" : "")
+                    .append("}\n");
+        }
+        Files.writeString(file, ndjson);
+        return uitCodes;
+    }
+
+    /**
+     * Start a stub that records the uit codes of every accepted document and fails the request with the given number.
+     */
+    private static HttpServer startRecordingStub(
+            List<String> submitted, AtomicInteger failingRequest, ExecutorService stubExecutor) throws IOException {
+        AtomicInteger requests = new AtomicInteger();
+        return startStub(exchange -> {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            if (requests.incrementAndGet() == failingRequest.get()) {
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+                return;
+            }
+            Gson gson = new Gson();
+            String productDocument = (String) gson.fromJson(body, Map.class).get("product_document");
+            Map<String, Object> document = gson.fromJson(
+                    new String(Base64.getDecoder().decode(productDocument), StandardCharsets.UTF_8), Map.class);
+            for (Object product : (List<?>) document.get("products")) {
+                submitted.add((String) ((Map<?, ?>) product).get("uit_code"));
+            }
+            respond(exchange, "{\"document_id\":\"stub-id\"}");
+        }, stubExecutor);
+    }
+
+    private void authenticateAgainst(HttpServer stub) throws Exception {
+        api = CrptApi.builder()
+                .timeUnit(TimeUnit.MINUTES)
+                .requestLimit(1000)
+                .baseUrl(stubBaseUrl(stub))
+                .build();
+        api.authenticate(data -> "signed-" + data);
+    }
+
+    private static List<String> sorted(List<String> values) {
+        List<String> copy = new ArrayList<>(values);
+        copy.sort(null);
+        return copy;
+    }
+
+    private CrptApi.BulkSubmitter newBulkSubmitter(Path input, Path checkpoint, PrintStream out) {
+        return newBulkSubmitter(input, checkpoint, 1000, out);
+    }
+
+    private CrptApi.BulkSubmitter newBulkSubmitter(Path input, Path checkpoint, int maxPendingRecords, PrintStream out) {
+        return new CrptApi.BulkSubmitter(api, data -> "signed", input, checkpoint, false,
+                CrptApi.ProductGroup.MILK, "OWN_PRODUCTION", 4, maxPendingRecords, 16, out);
+    }
+
+    private CrptApi.Document createValidDocument(List<CrptApi.Product> products) {
+        return new CrptApi.Document(
+                new CrptApi.Description("7707083893"), "DOC-001", null, "LP_INTRODUCE_GOODS", false,
+                "7707083893", null, "500100732259", LocalDate.of(2023, 1, 15), "OWN_PRODUCTION", products, null, null
+        );
+    }
+
     private CrptApi.Document createTestDocument() {
         CrptApi.Product product = new CrptApi.Product(
                 null, null, null, null, null, null, null, "uit-code-123", null
@@ -186,6 +882,37 @@ public class CrptApiTest {
         );
     }
 
+    /**
+     * Start a local stub of the API: authentication always succeeds, document creation is handled by the given handler.
+     */
+    private static HttpServer startStub(HttpHandler createDocumentHandler, ExecutorService stubExecutor) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/api/v3/auth/cert/key", exchange -> respond(exchange, "{\"uuid\":\"uuid-1\",\"data\":\"challenge\"}"));
+        server.createContext("/api/v3/auth/cert/", exchange -> respond(exchange, "{\"token\":\"stub-token\"}"));
+        server.createContext("/api/v3/lk/documents/create", createDocumentHandler);
+        server.setExecutor(stubExecutor);
+        server.start();
+        return server;
+    }
+
+    private static String stubBaseUrl(HttpServer server) {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/api/v3";
+    }
+
+    private static void respond(HttpExchange exchange, String json) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static InputStream jsonBody(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
     private void setMockHttpClient(CrptApi api, HttpClient mockClient) throws NoSuchFieldException, IllegalAccessException {
         Field clientField = CrptApi.class.getDeclaredField("httpClient");
         clientField.setAccessible(true);